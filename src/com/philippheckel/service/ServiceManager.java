@@ -7,6 +7,8 @@
  *   - Send messages to the service via ServiceManager.send() 
  *   - Receive messages with by passing a Handler in the constructor
  * 3. Send and receive messages on the service-side using send() and onReceiveMessage()
+ * 4. Optionally mark commands as sticky with setSticky(); the last one sent is
+ *    replayed whenever the service is reconnected after a crash
  * 
  * Author: Philipp C. Heckel; based on code by Lance Lefebure from
  *         http://stackoverflow.com/questions/4300291/example-communication-between-activity-and-service-using-messaging
@@ -27,16 +29,64 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
 public class ServiceManager {
+    // Delivered to the incoming Handler on every connection state change; arg1 = STATE_*
+    public static final int MSG_CONNECTION_STATE = 9993;
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    private static final long RECONNECT_MIN_DELAY = 500; // ms
+    private static final long RECONNECT_MAX_DELAY = 30 * 1000; // ms
+
 	private Class<? extends AbstractService> mServiceClass;
 	private Context mActivity;
     private boolean mIsBound;
+    private boolean mWantBound; // false once the caller asked us to stop/unbind
+    private int mState = STATE_DISCONNECTED;
     private Messenger mService = null;
+    private IBinder mServiceBinder = null;
     private Handler mIncomingHandler = null;
     private final Messenger mMessenger = new Messenger(new IncomingHandler());
+    private final Handler mReconnectHandler = new Handler();
+    private final SparseArray<Message> mStickyMessages = new SparseArray<Message>();
     private final String TAG = "ServiceManager";
+
+    private long mReconnectDelay = RECONNECT_MIN_DELAY;
+    private long mDisconnectedAt = 0;
+    private long mLastReconnectMillis = 0;
+    private int mReconnectCount = 0;
+    private int mFailedSendCount = 0;
+
+    private final Runnable mRunReconnect = new Runnable() {
+        public void run() {
+            if (mWantBound && !mIsBound) {
+                Log.v(TAG, "Reconnecting.");
+                doBindService();
+            }
+        }
+    };
+
+    private IBinder.DeathRecipient mDeathRecipient = null; // Linked to mServiceBinder
+
+    // One recipient per binder, so a late death notice for an old binder
+    // can be told apart from the current connection.
+    private IBinder.DeathRecipient newDeathRecipient(final IBinder binder) {
+        return new IBinder.DeathRecipient() {
+            public void binderDied() {
+                // Called on a binder thread; hop back to ours before touching state.
+                mReconnectHandler.post(new Runnable() {
+                    public void run() {
+                        handleServiceDied(binder);
+                    }
+                });
+            }
+        };
+    }
     
     private class IncomingHandler extends Handler {
         @Override
@@ -53,18 +103,36 @@ public class ServiceManager {
             mService = new Messenger(service);
             Log.v(TAG, "Attached.");
             try {
+                IBinder.DeathRecipient recipient = newDeathRecipient(service);
+                service.linkToDeath(recipient, 0);
+                // Only once linked; unlinkToDeath() throws for a link never made
+                mServiceBinder = service;
+                mDeathRecipient = recipient;
                 Message msg = Message.obtain(null, AbstractService.MSG_REGISTER_CLIENT);
                 msg.replyTo = mMessenger;
                 mService.send(msg);
             } catch (RemoteException e) {
                 // In this case the service has crashed before we could even do anything with it
+                handleServiceDied(null);
+                return;
+            }
+            if (0 != mDisconnectedAt) {
+                mLastReconnectMillis = SystemClock.elapsedRealtime() - mDisconnectedAt;
+                mReconnectCount++;
+                mDisconnectedAt = 0;
+                Log.i(TAG, "Reconnected in " + mLastReconnectMillis + "ms (reconnects " + mReconnectCount
+                        + ", failed sends " + mFailedSendCount + ")");
             }
+            // Also covers sticky messages sent before the first bind completed
+            replayStickyMessages();
+            mReconnectDelay = RECONNECT_MIN_DELAY;
+            setState(STATE_CONNECTED);
         }
 
         public void onServiceDisconnected(ComponentName className) {
             // This is called when the connection with the service has been unexpectedly disconnected - process crashed.
-            mService = null;
             Log.v(TAG, "Disconnected.");
+            handleServiceDied(null);
         }
     };
     
@@ -95,6 +163,31 @@ public class ServiceManager {
     	doUnbindService();
     }
     
+    /**
+     * Remember the last message sent with this 'what' and replay it on every (re)connect.
+     */
+    public void setSticky(int what) {
+        if (mStickyMessages.indexOfKey(what) < 0) {
+            mStickyMessages.put(what, null);
+        }
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public int getFailedSendCount() {
+        return mFailedSendCount;
+    }
+
+    public int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    public long getLastReconnectMillis() {
+        return mLastReconnectMillis;
+    }
+
     public boolean isRunning() {
     	ActivityManager manager = (ActivityManager) mActivity.getSystemService(Context.ACTIVITY_SERVICE);
 	    
@@ -108,12 +201,95 @@ public class ServiceManager {
     }
     
     public void send(Message msg) throws RemoteException {
-    	if (mIsBound) {
-            if (mService != null) {
-            	mService.send(msg);
+        // Sticky messages are replayed on the next connect, so they are deferred rather than failed
+        boolean sticky = mStickyMessages.indexOfKey(msg.what) >= 0;
+        if (sticky) {
+            Message last = mStickyMessages.get(msg.what);
+            if (last != null) {
+                last.recycle();
             }
+            mStickyMessages.put(msg.what, Message.obtain(msg));
+        }
+    	if (mIsBound && mService != null) {
+            try {
+                mService.send(msg);
+            } catch (RemoteException e) {
+                if (!sticky) {
+                    mFailedSendCount++;
+                }
+                throw e;
+            }
+    	} else if (sticky) {
+            Log.v(TAG, "Not connected; deferring sticky message: " + msg);
+    	} else {
+            mFailedSendCount++;
+            Log.v(TAG, "Not connected; dropped message (failed sends " + mFailedSendCount + "): " + msg);
     	}
     }
+
+    private void replayStickyMessages() {
+        for (int i = 0; i < mStickyMessages.size(); i++) {
+            Message last = mStickyMessages.valueAt(i);
+            if (last != null) {
+                try {
+                    Log.v(TAG, "Replaying: " + last);
+                    mService.send(Message.obtain(last));
+                } catch (RemoteException e) {
+                    mFailedSendCount++;
+                }
+            }
+        }
+    }
+
+    // 'died' is the binder a death notice was for; null means the current connection.
+    private void handleServiceDied(IBinder died) {
+        if (died != null && died != mServiceBinder) {
+            // Notice for a binder we've already dropped (e.g. after reconnecting)
+            return;
+        }
+        if (!mIsBound && mService == null && 0 != mDisconnectedAt) {
+            // binderDied() and onServiceDisconnected() both land here; handle once.
+            return;
+        }
+        unlinkServiceBinder();
+        mService = null;
+        if (mIsBound) {
+            // Drop the stale binding; a fresh bind below recreates the service.
+            mActivity.unbindService(mConnection);
+            mIsBound = false;
+        }
+        if (!mWantBound) {
+            setState(STATE_DISCONNECTED);
+            return;
+        }
+        if (0 == mDisconnectedAt) {
+            mDisconnectedAt = SystemClock.elapsedRealtime();
+        }
+        setState(STATE_DISCONNECTED);
+        Log.v(TAG, "Reconnecting in " + mReconnectDelay + "ms.");
+        mReconnectHandler.removeCallbacks(mRunReconnect);
+        mReconnectHandler.postDelayed(mRunReconnect, mReconnectDelay);
+        mReconnectDelay = Math.min(mReconnectDelay * 2, RECONNECT_MAX_DELAY);
+    }
+
+    private void unlinkServiceBinder() {
+        if (mServiceBinder != null) {
+            mServiceBinder.unlinkToDeath(mDeathRecipient, 0);
+            mServiceBinder = null;
+            mDeathRecipient = null;
+        }
+    }
+
+    private void setState(int state) {
+        if (mState == state) {
+            return;
+        }
+        Log.v(TAG, "Connection state " + mState + " -> " + state);
+        mState = state;
+        if (mIncomingHandler != null) {
+            mIncomingHandler.obtainMessage(MSG_CONNECTION_STATE, state, 0).sendToTarget();
+        }
+    }
     
     private void doStartService() {
     	mActivity.startService(new Intent(mActivity, mServiceClass));    	
@@ -124,11 +300,19 @@ public class ServiceManager {
     }
     
     private void doBindService() {
+    	mWantBound = true;
+    	if (mIsBound) {
+    		return;
+    	}
+    	setState(STATE_CONNECTING);
     	mActivity.bindService(new Intent(mActivity, mServiceClass), mConnection, Context.BIND_AUTO_CREATE);
     	mIsBound = true;
     }
     
     private void doUnbindService() {
+        mWantBound = false;
+        mReconnectHandler.removeCallbacks(mRunReconnect);
+        unlinkServiceBinder();
         if (mIsBound) {
             // If we have received the service, and hence registered with it, then now is the time to unregister.
             if (mService != null) {
@@ -144,8 +328,11 @@ public class ServiceManager {
             // Detach our existing connection.
             mActivity.unbindService(mConnection);
             mIsBound = false;
+            mService = null;
             //textStatus.setText("Unbinding.");
             Log.v(TAG, "Unbinding.");
         }
+        mDisconnectedAt = 0;
+        setState(STATE_DISCONNECTED);
     }
 }
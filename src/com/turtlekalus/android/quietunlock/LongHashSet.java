@@ -0,0 +1,62 @@
+/*
+ * Minimal open-addressing hash set of positive longs
+ *
+ * Used for the incoming-call lookup so the hot path is a few array
+ * reads with no boxing and no allocation. Immutable once built;
+ * callers swap in a new instance to change the contents.
+ *
+ * Author: Turtle Kalus (turtlekalus.com)
+ */
+
+package com.turtlekalus.android.quietunlock;
+
+final class LongHashSet {
+    static final LongHashSet EMPTY = new LongHashSet(new long[0], 0);
+
+    private final long[] mTable; // 0 marks an empty slot
+    private final int    mMask;
+    private final int    mSize;
+
+    // Only the first 'count' entries of 'values' are used; values <= 0 are skipped.
+    LongHashSet(long[] values, int count) {
+        int capacity = 2;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        mTable = new long[capacity];
+        mMask = capacity - 1;
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            long value = values[i];
+            if (value <= 0) continue;
+            int slot = hash(value) & mMask;
+            while (0 != mTable[slot] && value != mTable[slot]) {
+                slot = (slot + 1) & mMask;
+            }
+            if (0 == mTable[slot]) {
+                mTable[slot] = value;
+                size++;
+            }
+        }
+        mSize = size;
+    }
+
+    boolean contains(long value) {
+        if (value <= 0) return false;
+        int slot = hash(value) & mMask;
+        while (0 != mTable[slot]) {
+            if (value == mTable[slot]) return true;
+            slot = (slot + 1) & mMask;
+        }
+        return false;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
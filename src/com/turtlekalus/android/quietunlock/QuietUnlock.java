@@ -65,10 +65,16 @@ public class QuietUnlock extends Activity
         this.mServiceManager = new ServiceManager(this, QuietUnlockService.class, new Handler() {
             @Override
             public void handleMessage(Message msg) {
+                if (ServiceManager.MSG_CONNECTION_STATE == msg.what) {
+                    Log.d(TAG, "Service connection state " + Integer.toString(msg.arg1));
+                    return;
+                }
                 // Non-Op
                 super.handleMessage(msg);
             }
         });
+        // Re-send the chosen Silent/Vibrate mode if the Service restarts
+        mServiceManager.setSticky(QuietUnlockService.MSG_SET_RING);
         // Start QuietUnlockService
         mServiceManager.start();
         // Spin up GUI
@@ -130,11 +136,9 @@ public class QuietUnlock extends Activity
 
     private void sendMessageToService(int command, int arg1, int arg2) {
         try {
-            if(mServiceManager.isRunning()) {
-                mServiceManager.send(Message.obtain(null, command, arg1, arg2, this));
-            } else {
-                Log.d(TAG, "Service not running, skippig send");
-            }
+            // ServiceManager drops (and counts) sends while disconnected,
+            // but still remembers sticky ones for replay on reconnect.
+            mServiceManager.send(Message.obtain(null, command, arg1, arg2, this));
         } catch (RemoteException e) {
             Log.e(TAG,"Error Sending Message to Service");
         }
@@ -15,6 +15,13 @@
  *   Deal with Telephony creating unlock-false-positives
  *     - If the device has been unlocked for more than 10 seconds
  *     * Restore Ringer and Exit Service
+ *   Enforce a Maximum Session Duration
+ *     - If the unlock is never seen (missed broadcast, process death)
+ *     * SessionExpiryReceiver Restores Ringer on an exact Alarm
+ *   Optional Call Breakthrough
+ *     - If a Starred Contact calls during the session
+ *     * Ring with the restored Ringer Mode until the call is
+ *       answered or ends, then go back to Vibrate/Silent
  *   Listen for RINGER_MODE_CHANGED
  *     - User (or another entity) changed Ringer Mode while device
  *       was still locked (E.G. Volume Keys while viewing Lock Screen)
@@ -30,7 +37,9 @@
 package com.turtlekalus.android.quietunlock;
 
 import android.app.Activity;
+import android.app.AlarmManager;
 import android.app.KeyguardManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.app.admin.DeviceAdminReceiver;
 import android.app.admin.DevicePolicyManager;
@@ -39,16 +48,19 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
+import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.SystemClock;
+import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.widget.Toast;
-import java.lang.Runnable;
+import java.util.Arrays;
 import com.philippheckel.service.AbstractService;
 
 public class QuietUnlockService extends AbstractService {
@@ -65,6 +77,14 @@ public class QuietUnlockService extends AbstractService {
     private static final boolean START_SILENT = false;
     private static final int     TELEPHONE_DELAY = 10; // Seconds
 
+    // Session state survives process death here so SessionExpiryReceiver
+    // can still restore the ringer if the Service is gone.
+    private static final String  PREFS_SESSION       = "session";
+    private static final String  KEY_RESTORE_MODE    = "restore_mode";
+    private static final String  KEY_SESSION_MODE    = "session_mode"; // Silent/Vibrate choice
+    private static final String  KEY_SESSION_EXPIRES = "session_expires"; // elapsedRealtime
+    private static final String  KEY_BOOT_TIME       = "boot_time"; // Wall clock at boot
+    private static final long    BOOT_TIME_SLOP      = 60 * 1000; // ms; allows for clock adjustments
 
     public  static boolean mIsSilent           = START_SILENT;
     private static int     mRestoreRingerMode  = START_SILENT ? RING_SILENT : RING_VIBRATE;
@@ -73,86 +93,127 @@ public class QuietUnlockService extends AbstractService {
 
     private static ComponentName mAdminComponent = null;
     private static DevicePolicyManager mDevicePolicyManager = null;
+    private static QuietUnlockService  sInstance = null;
 
-    private BroadcastReceiver mBroadcastReceiver;
-    private IntentFilter mIntentFilter = new IntentFilter();
-    private Handler mHandler = new Handler();
-    private Runnable mRunRestoreRinger = new Runnable() {
-        public void run() {
-            handleRestoreRinger();
+    // Broadcast actions we listen for. These constants are interned, and
+    // so is every Intent action (Intent.setAction() interns), so dispatch
+    // can compare by reference against this table first.
+    private static final int    ACTION_SCREEN_OFF     = 0;
+    private static final int    ACTION_SCREEN_ON      = 1;
+    private static final int    ACTION_USER_PRESENT   = 2; // Device Unlock
+    private static final int    ACTION_RINGER_CHANGED = 3;
+    private static final String[] ACTIONS = {
+        Intent.ACTION_SCREEN_OFF,
+        Intent.ACTION_SCREEN_ON,
+        Intent.ACTION_USER_PRESENT,
+        // This Intent is Broadcast when the Ringer Mode changes
+        // Want to catch case where user changes Ringer Mode from Lock Screen
+        AudioManager.RINGER_MODE_CHANGED_ACTION,
+    };
+
+    private BroadcastReceiver mScreenOffReceiver = new ActionReceiver();
+    private BroadcastReceiver mSessionReceiver   = new ActionReceiver();
+    private boolean mScreenOffRegistered = false;
+    private boolean mSessionRegistered   = false;
+    private int     mBroadcastsDelivered = 0;
+    private int     mBroadcastsActedOn   = 0;
+
+    // Only one Alarm is ever armed; it fires at the earlier of the two
+    // deadlines below and is only re-armed when that earlier one moves.
+    // All times are SystemClock.elapsedRealtime(); 0 means "not set".
+    private AlarmManager  mAlarmManager;
+    private PendingIntent mAlarmIntent;
+    private long mSessionDeadline   = 0;
+    private long mTelephoneDeadline = 0;
+    private long mArmedDeadline     = 0;
+
+    private StarredContacts mStarredContacts;
+    private boolean mBreakthroughEnabled = false;
+    private boolean mBreakingThrough     = false;
+    // Our own Breakthrough changes still to be seen as RINGER_MODE_CHANGED,
+    // counted per Ringer Mode (SILENT/VIBRATE/NORMAL are 0..2)
+    private int[]   mPendingRingerChanges = new int[3];
+    private PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
+        @Override
+        public void onCallStateChanged(int state, String incomingNumber) {
+            if (TelephonyManager.CALL_STATE_RINGING == state) {
+                // Hot path: preloaded set lookup only, no provider query
+                if (!mBreakingThrough && mStarredContacts.contains(incomingNumber)) {
+                    Log.i(TAG, "Starred Contact calling; Breakthrough");
+                    mBreakingThrough = true;
+                    setRingerQuietly(mRestoreRingerMode);
+                }
+            } else {
+                endBreakthrough();
+            }
         }
     };
 
     @Override 
     public void onStartService() {
         mServiceActive = false;
+        sInstance = this;
 
         mAdminComponent = new ComponentName(this, DarClass.class);
         mDevicePolicyManager = (DevicePolicyManager)getSystemService(Context.DEVICE_POLICY_SERVICE);
-        mRestoreRingerMode = ((AudioManager)getSystemService(Context.AUDIO_SERVICE)).getRingerMode();
-
-        mBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if(Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
-                    Log.i(TAG, "ACTION_SCREEN_OFF: Service Active");
-                    // Screen Off Action activates service, always.
-                    mServiceActive = true;
-                    // Set "WasActive" to false and remove Runnable. We'll
-                    // start things again when the screen comes back on.
-                    mTelephoneWasActive = false;
-                    mHandler.removeCallbacks(mRunRestoreRinger);
-                    return;
-                } else if(Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
-                    if (mServiceActive) {
-                        Log.d(TAG, "ACTION_SCREEN_ON");
-                        handleRestoreRinger();
-                    }
-                    return;
-                } else if(Intent.ACTION_USER_PRESENT.equals(intent.getAction())) {
-                    if (mServiceActive) {
-                        Log.d(TAG, "ACTION_USER_PRESENT");
-                        handleRestoreRinger();
-                    }
-                    return;
-                } else if(AudioManager.RINGER_MODE_CHANGED_ACTION.equals(intent.getAction())) {
-                    // Handle User possibly-changing Ringer Mode from Lock Screen
-                    // using Vol Keys
-                    if(mServiceActive) {
-                        Log.i(TAG, "RINGER_MODE_CHANGED_ACTION: Dropping Service");
-                        stopService(false);
-                    }
-                    return;
-                }
-            }
-        };
+        mAlarmManager = (AlarmManager)getSystemService(Context.ALARM_SERVICE);
+        Intent alarm = new Intent(this, SessionExpiryReceiver.class);
+        // Reboot and Force Stop both drop our Alarm; only a plain process
+        // death leaves it pending.
+        boolean alarmPending = null != PendingIntent.getBroadcast(this, 0, alarm, PendingIntent.FLAG_NO_CREATE);
+        mAlarmIntent = PendingIntent.getBroadcast(this, 0, alarm, 0);
 
+        SharedPreferences prefs = getSharedPreferences(PREFS_SESSION, Context.MODE_PRIVATE);
+        long sessionExpires = prefs.getLong(KEY_SESSION_EXPIRES, 0);
+        int sessionMode = START_SILENT ? RING_SILENT : RING_VIBRATE;
+        if (prefs.contains(KEY_RESTORE_MODE) && isSameBoot(prefs.getLong(KEY_BOOT_TIME, 0))
+                && (0 == sessionExpires || alarmPending)) {
+            // Restarted after process death mid-session; the current ringer
+            // is our own, so keep the original restore mode and deadline.
+            Log.i(TAG, "Resuming Session after Restart");
+            mRestoreRingerMode = prefs.getInt(KEY_RESTORE_MODE, RING_NORMAL);
+            mSessionDeadline = sessionExpires;
+            sessionMode = prefs.getInt(KEY_SESSION_MODE, sessionMode);
+            updateAlarm();
+        } else {
+            // Nothing saved, or left over from before a Reboot/Force Stop
+            prefs.edit().clear().commit();
+            mRestoreRingerMode = ((AudioManager)getSystemService(Context.AUDIO_SERVICE)).getRingerMode();
+            setMaxSession(getResources().getInteger(R.integer.max_session_minutes));
+        }
+        mStarredContacts = new StarredContacts(this);
+        setBreakthrough(getResources().getBoolean(R.bool.call_breakthrough));
 
-        mIntentFilter.addAction(Intent.ACTION_SCREEN_OFF);
-        mIntentFilter.addAction(Intent.ACTION_SCREEN_ON);
-        mIntentFilter.addAction(Intent.ACTION_USER_PRESENT); // Device Unlock
-        // This Intent is Broadcast when the Ringer Mode changes
-        // Want to catch case where user changes Ringer Mode from Lock Screen
-        mIntentFilter.addAction(AudioManager.RINGER_MODE_CHANGED_ACTION);
-        registerReceiver(mBroadcastReceiver, mIntentFilter);
+        // Until the screen first goes off, Screen Off is the only broadcast
+        // we care about; the rest are registered when the session arms.
+        registerReceiver(mScreenOffReceiver, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+        mScreenOffRegistered = true;
 
-        setRinger(START_SILENT ? RING_SILENT : RING_VIBRATE);
+        setSessionRinger(sessionMode);
         Log.d(TAG, "Service Started.");
     }
 
     @Override
     public void onStopService() {
+        // Alarm and saved session are left in place unless stopService()
+        // already cleared them; SessionExpiryReceiver restores without us.
         mServiceActive = false;
-        Context context = getBaseContext();
-        context.unregisterReceiver(mBroadcastReceiver);
-        Log.d(TAG, "Service Stopped.");
+        sInstance = null;
+        setBreakthrough(false);
+        unregisterSessionReceiver();
+        if (mScreenOffRegistered) {
+            unregisterReceiver(mScreenOffReceiver);
+            mScreenOffRegistered = false;
+        }
+        Log.d(TAG, "Service Stopped; broadcasts " + Integer.toString(mBroadcastsDelivered)
+                + " delivered, " + Integer.toString(mBroadcastsActedOn) + " acted on");
     }
 
     @Override
     public void onReceiveMessage(Message msg) {
         switch(msg.what) {
             case MSG_SET_RING:
-                setRinger(msg.arg1);
+                setSessionRinger(msg.arg1);
                 break;
             case MSG_LOCK:
                 doLockScreen((Activity)msg.obj);
@@ -163,12 +224,168 @@ public class QuietUnlockService extends AbstractService {
         }
     }
 
+    // Called by SessionExpiryReceiver when the Alarm fires. If the Service
+    // is gone, restore straight from the saved session instead.
+    static void onSessionAlarm(Context context) {
+        if (null != sInstance) {
+            sInstance.handleSessionAlarm();
+            return;
+        }
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_SESSION, Context.MODE_PRIVATE);
+        if (prefs.contains(KEY_RESTORE_MODE)) {
+            Log.i(TAG, "Session Alarm w/out Service; Restoring Ringer");
+            ((AudioManager)context.getSystemService(Context.AUDIO_SERVICE))
+                .setRingerMode(prefs.getInt(KEY_RESTORE_MODE, RING_NORMAL));
+            prefs.edit().clear().commit();
+            context.stopService(new Intent(context, QuietUnlockService.class));
+        }
+    }
+
+    private class ActionReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mBroadcastsDelivered++;
+            if (handleAction(actionIndex(intent.getAction()), intent, isInitialStickyBroadcast())) {
+                mBroadcastsActedOn++;
+            }
+        }
+    }
+
+    private static int actionIndex(String action) {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i] == action) return i;
+        }
+        // Not interned by the sender; fall back to a full compare
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i].equals(action)) return i;
+        }
+        return -1;
+    }
+
+    // Returns true if the broadcast changed anything
+    private boolean handleAction(int action, Intent intent, boolean initialSticky) {
+        switch (action) {
+            case ACTION_SCREEN_OFF:
+                Log.i(TAG, "ACTION_SCREEN_OFF: Service Active");
+                // Screen Off Action activates service, always.
+                mServiceActive = true;
+                registerSessionReceiver();
+                // Set "WasActive" to false and drop the Telephone check. We'll
+                // start things again when the screen comes back on.
+                mTelephoneWasActive = false;
+                mTelephoneDeadline = 0;
+                updateAlarm();
+                return true;
+            case ACTION_SCREEN_ON:
+            case ACTION_USER_PRESENT:
+                if (!mServiceActive) return false;
+                Log.d(TAG, ACTIONS[action]);
+                handleRestoreRinger();
+                return true;
+            case ACTION_RINGER_CHANGED:
+                // RINGER_MODE_CHANGED is sticky; registering the session
+                // receiver replays the current mode, which is our own.
+                if (initialSticky) return false;
+                int ringMode = intent.getIntExtra(AudioManager.EXTRA_RINGER_MODE, -1);
+                if (ringMode >= 0 && ringMode < mPendingRingerChanges.length
+                        && mPendingRingerChanges[ringMode] > 0) {
+                    mPendingRingerChanges[ringMode]--;
+                    return false;
+                }
+                // Handle User possibly-changing Ringer Mode from Lock Screen
+                // using Vol Keys
+                if (!mServiceActive) return false;
+                Log.i(TAG, "RINGER_MODE_CHANGED_ACTION: Dropping Service");
+                stopService(false);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void registerSessionReceiver() {
+        if (mSessionRegistered) return;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTIONS[ACTION_SCREEN_ON]);
+        filter.addAction(ACTIONS[ACTION_USER_PRESENT]);
+        filter.addAction(ACTIONS[ACTION_RINGER_CHANGED]);
+        registerReceiver(mSessionReceiver, filter);
+        mSessionRegistered = true;
+    }
+
+    private void unregisterSessionReceiver() {
+        if (!mSessionRegistered) return;
+        unregisterReceiver(mSessionReceiver);
+        mSessionRegistered = false;
+        Arrays.fill(mPendingRingerChanges, 0);
+    }
+
+    private void handleSessionAlarm() {
+        long now = SystemClock.elapsedRealtime();
+        mArmedDeadline = 0;
+        if (0 != mSessionDeadline && now >= mSessionDeadline) {
+            Log.i(TAG, "Max Session Duration reached");
+            stopService(true);
+            return;
+        }
+        if (0 != mTelephoneDeadline && now >= mTelephoneDeadline) {
+            mTelephoneDeadline = 0;
+            handleRestoreRinger();
+        }
+        updateAlarm();
+    }
+
+    private void setMaxSession(int minutes) {
+        if (minutes > 0) {
+            mSessionDeadline = SystemClock.elapsedRealtime() + (minutes * 60 * 1000L);
+        } else {
+            mSessionDeadline = 0;
+        }
+        Log.d(TAG, "Max Session " + Integer.toString(minutes) + " mins");
+        getSharedPreferences(PREFS_SESSION, Context.MODE_PRIVATE).edit()
+            .putInt(KEY_RESTORE_MODE, mRestoreRingerMode)
+            .putLong(KEY_SESSION_EXPIRES, mSessionDeadline)
+            .putLong(KEY_BOOT_TIME, bootTime())
+            .commit();
+        updateAlarm();
+    }
+
+    private static long bootTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    private static boolean isSameBoot(long savedBootTime) {
+        return Math.abs(bootTime() - savedBootTime) < BOOT_TIME_SLOP;
+    }
+
+    // (Re-)Arm the single Alarm for the earliest deadline. No-op if that
+    // deadline hasn't moved, so repeated events don't churn AlarmManager.
+    private void updateAlarm() {
+        long deadline = mSessionDeadline;
+        if (0 != mTelephoneDeadline && (0 == deadline || mTelephoneDeadline < deadline)) {
+            deadline = mTelephoneDeadline;
+        }
+        if (deadline == mArmedDeadline || null == mAlarmManager) return;
+        mArmedDeadline = deadline;
+        if (0 == deadline) {
+            mAlarmManager.cancel(mAlarmIntent);
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, mAlarmIntent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, mAlarmIntent);
+        } else {
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, mAlarmIntent);
+        }
+    }
+
     private void handleRestoreRinger() {
         // If the service is no longer active, return
         if (!mServiceActive) return;
 
         // We do not want to restore ringer if Telephone is active.
-        // Instead, we will spin up an Handler to check every n seconds
+        // Instead, we will set the Alarm to check every n seconds
         // for telephone activity. Screen Off will remove Alarm.
         if (!isTelephoneActive()) {
             if(!mTelephoneWasActive) {
@@ -190,9 +407,42 @@ public class QuietUnlockService extends AbstractService {
         }
         Log.i(TAG, "Telephone Activity; checking in " + Integer.toString(TELEPHONE_DELAY)
                 + " secs; (wasActive " + Boolean.toString(mTelephoneWasActive) + ")");
-        // On have one Runner queue'd at a time
-        mHandler.removeCallbacks(mRunRestoreRinger);
-        mHandler.postDelayed(mRunRestoreRinger, (TELEPHONE_DELAY * 1000));
+        mTelephoneDeadline = SystemClock.elapsedRealtime() + (TELEPHONE_DELAY * 1000);
+        updateAlarm();
+    }
+
+    private void setBreakthrough(boolean enabled) {
+        if (enabled == mBreakthroughEnabled) return;
+        mBreakthroughEnabled = enabled;
+        Log.d(TAG, "Breakthrough " + Boolean.toString(enabled));
+        TelephonyManager tm = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
+        if (enabled) {
+            // Preload now so the ringing path never waits on Contacts
+            mStarredContacts.start();
+            if (null != tm) tm.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
+        } else {
+            if (null != tm) tm.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            mStarredContacts.stop();
+            endBreakthrough();
+        }
+    }
+
+    private void endBreakthrough() {
+        if (!mBreakingThrough) return;
+        mBreakingThrough = false;
+        Log.i(TAG, "Breakthrough over");
+        setRingerQuietly(mIsSilent ? RING_SILENT : RING_VIBRATE);
+    }
+
+    // Change Ringer without it being mistaken for the User's change
+    private void setRingerQuietly(int ringMode) {
+        AudioManager am = (AudioManager)getSystemService(Context.AUDIO_SERVICE);
+        if (am.getRingerMode() == ringMode) return;
+        // No RINGER_MODE_CHANGED is delivered before the session arms
+        if (mSessionRegistered && ringMode >= 0 && ringMode < mPendingRingerChanges.length) {
+            mPendingRingerChanges[ringMode]++;
+        }
+        am.setRingerMode(ringMode);
     }
 
     private boolean isKeyguardLocked(boolean includeSlide) {
@@ -251,14 +501,30 @@ public class QuietUnlockService extends AbstractService {
         ((AudioManager)getSystemService(Context.AUDIO_SERVICE)).setRingerMode(ringMode);
     }
 
+    // The User's Silent/Vibrate choice; saved so a restart can re-apply it
+    private void setSessionRinger(int ringMode) {
+        setRinger(ringMode);
+        getSharedPreferences(PREFS_SESSION, Context.MODE_PRIVATE).edit()
+            .putInt(KEY_SESSION_MODE, ringMode)
+            .commit();
+    }
+
     private void stopService(boolean restoreRingMode) {
+        // Leave the Ringer to the restore below (or to the User's own
+        // change); don't switch back to Silent/Vibrate on the way out.
+        mBreakingThrough = false;
+        setBreakthrough(false);
         if (restoreRingMode) {
             Log.i(TAG, "Restoring Ringer");
             setRinger(mRestoreRingerMode);
         }
         Log.d(TAG, "Stopping Service");
-        mHandler.removeCallbacks(mRunRestoreRinger);
+        mSessionDeadline = 0;
+        mTelephoneDeadline = 0;
+        updateAlarm();
+        getSharedPreferences(PREFS_SESSION, Context.MODE_PRIVATE).edit().clear().commit();
         mServiceActive = false;
+        unregisterSessionReceiver();
         stopSelf();
     }
 }
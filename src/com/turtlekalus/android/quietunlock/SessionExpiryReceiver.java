@@ -0,0 +1,22 @@
+/*
+ * Receiver for QuietUnlockService's session Alarm
+ *
+ * Kept separate from the Service so the ringer can still be restored
+ * when the Alarm fires after the Service (or its process) is gone,
+ * without bringing up the Activity.
+ *
+ * Author: Turtle Kalus (turtlekalus.com)
+ */
+
+package com.turtlekalus.android.quietunlock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+public class SessionExpiryReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        QuietUnlockService.onSessionAlarm(context);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Preloaded set of Starred Contacts' phone numbers for Call Breakthrough
+ *
+ * This handles:
+ *   Loading every Starred Contact's numbers once, at session start,
+ *     on a background thread
+ *   Normalizing numbers to the platform's caller-ID match (the
+ *     trailing 7 digits, PhoneNumberUtils.toCallerIDMinMatch) so
+ *     "+33 6 12 34 56 78" and "06 12 34 56 78" compare equal
+ *   Watching the Contacts provider and re-querying only the Contacts
+ *     changed/deleted since the last refresh (API 18+; full reload before)
+ *   Answering contains() for an incoming number with no provider query
+ *
+ * Author: Turtle Kalus (turtlekalus.com)
+ */
+
+package com.turtlekalus.android.quietunlock;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.DeletedContacts;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+import java.util.HashMap;
+
+class StarredContacts {
+    private static final String TAG = "StarredContacts";
+    private static final int    REFRESH_DELAY   = 500; // ms; coalesces bursts of provider changes
+
+    private final Context mContext;
+
+    // Each start() gets its own Generation (thread + map). A load still
+    // running after stop() works on its own map and is not allowed to
+    // publish, so generations never share state.
+    private Generation mGeneration; // Main thread only
+
+    // Read on the main thread (incoming call); replaced wholesale by the
+    // current Generation's thread. Guarded by 'this' for writes.
+    private volatile LongHashSet mNumbers = LongHashSet.EMPTY;
+
+    StarredContacts(Context context) {
+        mContext = context;
+    }
+
+    void start() {
+        if (null != mGeneration) return;
+        mGeneration = new Generation();
+        mGeneration.start();
+    }
+
+    void stop() {
+        if (null == mGeneration) return;
+        Generation generation = mGeneration;
+        mGeneration = null;
+        synchronized (this) {
+            generation.mStopped = true;
+            mNumbers = LongHashSet.EMPTY;
+        }
+        generation.stop();
+    }
+
+    boolean contains(String number) {
+        return mNumbers.contains(normalize(number));
+    }
+
+    // Caller-ID min match (same rule the platform uses to match caller
+    // ID to Contacts) as a long; -1 if there are no digits.
+    static long normalize(String number) {
+        if (null == number) return -1;
+        String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+        if (null == minMatch) return -1;
+        long value = 0;
+        long place = 1;
+        for (int i = 0; i < minMatch.length(); i++) {
+            char c = minMatch.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value += (c - '0') * place;
+                place *= 10;
+            }
+        }
+        // Prefix with a leading 1 so numbers with leading zeros stay distinct and > 0
+        return (1 == place) ? -1 : value + place;
+    }
+
+    private class Generation {
+        private final HandlerThread mThread = new HandlerThread(TAG);
+        private Handler         mHandler;
+        private ContentObserver mObserver;
+        private boolean         mStopped = false; // Guarded by StarredContacts.this
+
+        // Contact _ID -> normalized numbers. Only touched on mThread.
+        private final HashMap<Long, long[]> mByContact = new HashMap<Long, long[]>();
+        private long mLastRefresh = 0; // System.currentTimeMillis()
+
+        private final Runnable mRunLoad = new Runnable() {
+            public void run() {
+                loadAll();
+            }
+        };
+        private final Runnable mRunRefresh = new Runnable() {
+            public void run() {
+                refresh();
+            }
+        };
+
+        void start() {
+            mThread.start();
+            final Handler handler = new Handler(mThread.getLooper());
+            mHandler = handler;
+            mObserver = new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    handler.removeCallbacks(mRunRefresh);
+                    handler.postDelayed(mRunRefresh, REFRESH_DELAY);
+                }
+            };
+            mContext.getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true, mObserver);
+            handler.post(mRunLoad);
+        }
+
+        void stop() {
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mHandler.removeCallbacksAndMessages(null);
+            mThread.quit();
+        }
+
+        private void loadAll() {
+            mLastRefresh = System.currentTimeMillis();
+            mByContact.clear();
+            Cursor c = queryStarredPhones(null);
+            if (null == c) return;
+            try {
+                addPhones(c);
+            } finally {
+                c.close();
+            }
+            publish();
+        }
+
+        private void refresh() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                // No change timestamps to query against
+                loadAll();
+                return;
+            }
+            ContentResolver cr = mContext.getContentResolver();
+            String since = Long.toString(mLastRefresh);
+            mLastRefresh = System.currentTimeMillis();
+
+            // Every changed Contact is dropped, then re-added below if still Starred
+            Cursor c = cr.query(ContactsContract.Contacts.CONTENT_URI,
+                    new String[] { ContactsContract.Contacts._ID },
+                    ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">" + since, null, null);
+            if (null != c) {
+                try {
+                    while (c.moveToNext()) {
+                        mByContact.remove(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            c = cr.query(DeletedContacts.CONTENT_URI,
+                    new String[] { DeletedContacts.CONTACT_ID },
+                    DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">" + since, null, null);
+            if (null != c) {
+                try {
+                    while (c.moveToNext()) {
+                        mByContact.remove(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            c = queryStarredPhones(Phone.CONTACT_LAST_UPDATED_TIMESTAMP + ">" + since);
+            if (null != c) {
+                try {
+                    addPhones(c);
+                } finally {
+                    c.close();
+                }
+            }
+            publish();
+        }
+
+        private Cursor queryStarredPhones(String extraSelection) {
+            String selection = Phone.STARRED + "=1";
+            if (null != extraSelection) {
+                selection += " AND " + extraSelection;
+            }
+            try {
+                return mContext.getContentResolver().query(Phone.CONTENT_URI,
+                        new String[] { Phone.CONTACT_ID, Phone.NUMBER }, selection, null, null);
+            } catch (SecurityException e) {
+                Log.e(TAG, "No permission to read Contacts");
+                return null;
+            }
+        }
+
+        private void addPhones(Cursor c) {
+            while (c.moveToNext()) {
+                long number = normalize(c.getString(1));
+                if (number <= 0) continue;
+                Long id = c.getLong(0);
+                long[] numbers = mByContact.get(id);
+                if (null == numbers) {
+                    numbers = new long[] { number };
+                } else {
+                    long[] grown = new long[numbers.length + 1];
+                    System.arraycopy(numbers, 0, grown, 0, numbers.length);
+                    grown[numbers.length] = number;
+                    numbers = grown;
+                }
+                mByContact.put(id, numbers);
+            }
+        }
+
+        private void publish() {
+            int count = 0;
+            for (long[] numbers : mByContact.values()) {
+                count += numbers.length;
+            }
+            long[] all = new long[count];
+            int i = 0;
+            for (long[] numbers : mByContact.values()) {
+                System.arraycopy(numbers, 0, all, i, numbers.length);
+                i += numbers.length;
+            }
+            LongHashSet numbers = new LongHashSet(all, count);
+            synchronized (StarredContacts.this) {
+                if (mStopped) return;
+                mNumbers = numbers;
+            }
+            Log.d(TAG, "Starred numbers: " + Integer.toString(numbers.size()));
+        }
+    }
+}